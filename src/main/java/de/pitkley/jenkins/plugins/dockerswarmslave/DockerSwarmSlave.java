@@ -6,8 +6,13 @@ import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredenti
 import com.cloudbees.plugins.credentials.domains.DomainRequirement;
 import hudson.EnvVars;
 import hudson.Launcher;
+import hudson.Proc;
 import hudson.model.AbstractProject;
 import hudson.model.Computer;
+import hudson.model.Job;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Run;
 import hudson.model.TaskListener;
 import hudson.util.ArgumentListBuilder;
 import hudson.util.ExceptionCatchingThreadFactory;
@@ -15,6 +20,7 @@ import hudson.util.LogTaskListener;
 import hudson.util.NamingThreadFactory;
 import jenkins.model.Jenkins;
 import org.jenkinsci.plugins.docker.commons.credentials.DockerRegistryEndpoint;
+import org.jenkinsci.plugins.docker.commons.credentials.DockerServerEndpoint;
 import org.jenkinsci.plugins.docker.commons.credentials.KeyMaterial;
 import org.jenkinsci.plugins.docker.commons.tools.DockerTool;
 
@@ -37,6 +43,9 @@ public class DockerSwarmSlave implements Closeable {
     private static final int SLAVE_TIMEOUT = 10; // TODO maybe move to system configuration?
     private transient static final ExecutorService executorService = Executors.newCachedThreadPool(new ExceptionCatchingThreadFactory(new NamingThreadFactory(Executors.defaultThreadFactory(), "DockerSwarmSlave.executor")));
     private transient static final Map<AbstractProject<?, ?>, DockerSwarmSlave> DOCKER_SWARM_SLAVE_MAP = new HashMap<AbstractProject<?, ?>, DockerSwarmSlave>();
+    // Shared slaves by sharing-key, guarded by `DOCKER_SWARM_SLAVE_MAP` as well
+    private transient static final Map<String, List<DockerSwarmSlave>> SHARED_SLAVES = new HashMap<String, List<DockerSwarmSlave>>();
+    private transient static int sharedSlaveCounter = 0;
 
     private transient final Logger logger = Logger.getLogger(getClass().getName());
     private transient final TaskListener listener = new LogTaskListener(logger, Level.ALL);
@@ -44,9 +53,9 @@ public class DockerSwarmSlave implements Closeable {
     private transient final Computer jenkinsComputer = jenkins.createComputer();
     private transient final Launcher launcher = jenkins.createLauncher(listener);
 
-    private final DockerSwarmSlaveBuildWrapper buildWrapper;
-    private final AbstractProject<?, ?> project;
-    private final int buildNumber;
+    private final DockerSwarmSlaveConfiguration configuration;
+    private final Job<?, ?> job;
+    private final String slaveLabel;
 
     private long timeWaitForStart = -1L;
     private long timeWaitForSlave = -1L;
@@ -56,47 +65,349 @@ public class DockerSwarmSlave implements Closeable {
 
     private KeyMaterial dockerEnv;
     private EnvVars envVars;
-
-    private DockerSwarmSlave(DockerSwarmSlaveBuildWrapper buildWrapper, AbstractProject<?, ?> project, int buildNumber) throws IOException, InterruptedException {
-        this.buildWrapper = buildWrapper;
-        this.project = project;
-        this.buildNumber = buildNumber;
-
-        this.registryEndpoint = new DockerRegistryEndpoint(null, buildWrapper.getDockerRegistryCredentials());
-        this.dockerExecutable = DockerTool.getExecutable(buildWrapper.getDockerInstallation(), jenkins, null, jenkinsComputer.getEnvironment());
+    private boolean closing = false;
+
+    private volatile Exception launchFailure;
+    private boolean waitingForCapacity = false;
+
+    // Provisioning timeline of the container, guarded by `this`
+    private long timeContainerCreated = -1L;
+    private long timeAgentConnected = -1L;
+    private String imageDigest;
+    // Timelines of the builds waiting for or running on this slave (shared slaves drop them once the lease is released)
+    private final List<DockerSwarmSlaveProvisioningAction> timelines = new ArrayList<DockerSwarmSlaveProvisioningAction>();
+
+    private boolean speculative = false;
+    private long timeSpeculated = -1L;
+    private int speculationTimeout;
+    // The upstream build the speculation was triggered by, if any
+    private transient Run<?, ?> upstream;
+    private boolean reaped = false;
+
+    // Only used by shared slaves, guarded by `DOCKER_SWARM_SLAVE_MAP`
+    private String sharingKey;
+    private int executors = 1;
+    private int maxBuilds;
+    private int idleTimeout;
+    private int leases = 0;
+    private int totalLeases = 0;
+    private long timeIdleSince = -1L;
+
+    private DockerSwarmSlave(DockerSwarmSlaveConfiguration configuration, Job<?, ?> job, String slaveLabel) throws IOException, InterruptedException {
+        this.configuration = configuration;
+        this.job = job;
+        this.slaveLabel = slaveLabel;
+
+        this.registryEndpoint = new DockerRegistryEndpoint(null, configuration.getDockerRegistryCredentials());
+        this.dockerExecutable = DockerTool.getExecutable(configuration.getDockerInstallation(), jenkins, null, jenkinsComputer.getEnvironment());
 
         setupCredentials();
     }
 
+    /**
+     * Creates the dedicated docker-swarm-slave for the given build of the project.
+     * <p/>
+     * Creating a slave materializes its credentials, which must not happen while holding `DOCKER_SWARM_SLAVE_MAP` (the
+     * queue waits for it). Here and in {@link #speculate(DockerSwarmSlaveBuildWrapper, AbstractProject, Run)} and
+     * {@link #acquire(DockerSwarmSlaveBuildWrapper, AbstractProject)} slaves are thus created up front and only
+     * registered under the lock, after checking again.
+     */
     public static DockerSwarmSlave create(DockerSwarmSlaveBuildWrapper buildWrapper, AbstractProject<?, ?> project, int buildNumber) throws IOException, InterruptedException {
-        if (DOCKER_SWARM_SLAVE_MAP.containsKey(project)) {
-            throw new IllegalArgumentException("DockerSwarmSlave for project already created, use `DockerSwarmSlave#get()` to get it");
+        DockerSwarmSlave dockerSwarmSlave = new DockerSwarmSlave(buildWrapper, project, "dss-" + project.getName().hashCode() + "-" + buildNumber);
+        synchronized (DOCKER_SWARM_SLAVE_MAP) {
+            if (!DOCKER_SWARM_SLAVE_MAP.containsKey(project)) {
+                DOCKER_SWARM_SLAVE_MAP.put(project, dockerSwarmSlave);
+                return dockerSwarmSlave;
+            }
+        }
+
+        dockerSwarmSlave.discard();
+        throw new IllegalArgumentException("DockerSwarmSlave for project already created, use `DockerSwarmSlave#get()` to get it");
+    }
+
+    /**
+     * Launches a docker-swarm-slave for the next build of the given project before that build is actually queued.
+     * <p/>
+     * The slave is claimed by the build through {@link #claim()} once it gets queued. If that doesn't happen within
+     * the speculation timeout of the project the slave is reaped by {@link DockerSwarmSlaveReaper}. When triggered by
+     * an upstream build, the timeout only starts once that build is done.
+     *
+     * @param upstream the upstream build that triggered the speculation, if any
+     * @return the speculative slave, or `null` if the project already has a slave
+     */
+    public static
+    @Nullable
+    DockerSwarmSlave speculate(DockerSwarmSlaveBuildWrapper buildWrapper, AbstractProject<?, ?> project, @Nullable Run<?, ?> upstream) throws IOException, InterruptedException, URISyntaxException {
+        // Shared slaves are kept around anyway, there is nothing to speculate on
+        if (buildWrapper.isShared() || !canSpeculate(project)) {
+            return null;
+        }
+
+        // The suffix keeps the container of a speculation that gets discarded apart from the one that replaces it
+        String suffix = UUID.randomUUID().toString().substring(0, 8);
+        DockerSwarmSlave dockerSwarmSlave = new DockerSwarmSlave(buildWrapper, project, "dss-" + project.getName().hashCode() + "-" + project.getNextBuildNumber() + "-" + suffix);
+        dockerSwarmSlave.speculative = true;
+        dockerSwarmSlave.timeSpeculated = System.currentTimeMillis();
+        dockerSwarmSlave.speculationTimeout = buildWrapper.getSpeculationTimeout();
+        dockerSwarmSlave.upstream = upstream;
+
+        synchronized (DOCKER_SWARM_SLAVE_MAP) {
+            // The build might have been queued (or another speculation started) while we created the slave
+            if (!canSpeculate(project)) {
+                dockerSwarmSlave = null;
+            } else {
+                DOCKER_SWARM_SLAVE_MAP.put(project, dockerSwarmSlave);
+            }
+        }
+        if (dockerSwarmSlave == null) {
+            return null;
+        }
+
+        dockerSwarmSlave.createSlave();
+        return dockerSwarmSlave;
+    }
+
+    private static boolean canSpeculate(AbstractProject<?, ?> project) {
+        synchronized (DOCKER_SWARM_SLAVE_MAP) {
+            return !DOCKER_SWARM_SLAVE_MAP.containsKey(project) && !DockerSwarmSlaveAbortHelper.shouldAbortBuild(project);
+        }
+    }
+
+    /**
+     * Leases an executor of a shared docker-swarm-slave to a queued build of the given project. Every queued build
+     * holds its own lease (see {@link DockerSwarmSlaveLabelAssignment}) and gives it back through
+     * {@link #releaseLease(DockerSwarmSlaveProvisioningAction)}.
+     * <p/>
+     * Builds are bin-packed onto the compatible slave (see
+     * {@link #getSharingKey(DockerSwarmSlaveBuildWrapper, AbstractProject)}) that has the most leases but still a free
+     * executor, so that lightly used slaves become idle and can be recycled. A new slave is only launched if none has
+     * capacity left.
+     */
+    public static DockerSwarmSlave acquire(DockerSwarmSlaveBuildWrapper buildWrapper, AbstractProject<?, ?> project) throws IOException, InterruptedException, URISyntaxException {
+        String sharingKey = getSharingKey(buildWrapper, project);
+        DockerSwarmSlave created = null;
+        DockerSwarmSlave dockerSwarmSlave = null;
+        boolean launch = false;
+        while (dockerSwarmSlave == null) {
+            int number;
+            synchronized (DOCKER_SWARM_SLAVE_MAP) {
+                List<DockerSwarmSlave> sharedSlaves = SHARED_SLAVES.get(sharingKey);
+                if (sharedSlaves == null) {
+                    sharedSlaves = new ArrayList<DockerSwarmSlave>();
+                    SHARED_SLAVES.put(sharingKey, sharedSlaves);
+                }
+
+                for (DockerSwarmSlave candidate : sharedSlaves) {
+                    if (candidate.hasCapacity() && (dockerSwarmSlave == null || candidate.leases > dockerSwarmSlave.leases)) {
+                        dockerSwarmSlave = candidate;
+                    }
+                }
+
+                // Only launch the slave we created if there still is no other one with capacity left
+                if (dockerSwarmSlave == null && created != null) {
+                    sharedSlaves.add(created);
+                    dockerSwarmSlave = created;
+                    created = null;
+                    launch = true;
+                }
+
+                if (dockerSwarmSlave != null) {
+                    dockerSwarmSlave.leases++;
+                    dockerSwarmSlave.totalLeases++;
+                    break;
+                }
+                number = sharedSlaveCounter++;
+            }
+
+            created = new DockerSwarmSlave(buildWrapper, project, "dss-shared-" + sharingKey.hashCode() + "-" + number);
+            created.sharingKey = sharingKey;
+            created.executors = buildWrapper.getExecutors();
+            created.maxBuilds = buildWrapper.getMaxBuilds();
+            created.idleTimeout = buildWrapper.getIdleTimeout();
+        }
+
+        if (created != null) {
+            created.discard();
+        }
+        if (launch) {
+            dockerSwarmSlave.createSlave();
+        }
+        return dockerSwarmSlave;
+    }
+
+    /**
+     * Builds can only share a slave if everything that goes into launching the container is the same, and if the slave
+     * is recycled the same way.
+     * <p/>
+     * Credential IDs are resolved relative to the project (e.g. from credentials stored in a folder), the same ID can
+     * thus stand for different credentials in another folder. If credentials are involved, only projects of the same
+     * folder share a slave.
+     */
+    protected static String getSharingKey(DockerSwarmSlaveBuildWrapper buildWrapper, AbstractProject<?, ?> project) {
+        String scope = "";
+        if (!isNullOrEmpty(buildWrapper.getSwarmCredentials())
+                || !isNullOrEmpty(buildWrapper.getDockerHost().getCredentialsId())
+                || !isNullOrEmpty(buildWrapper.getDockerRegistryCredentials())) {
+            scope = project.getParent().getFullName();
+        }
+
+        return buildWrapper.getDockerImage() + "\n"
+                + buildWrapper.getSwarmCredentials() + "\n"
+                + buildWrapper.getJenkinsUri() + "\n"
+                + buildWrapper.shouldAutodetect() + "\n"
+                + buildWrapper.getDockerHost().getUri() + "\n"
+                + buildWrapper.getDockerHost().getCredentialsId() + "\n"
+                + buildWrapper.getDockerInstallation() + "\n"
+                + buildWrapper.getDockerNetwork() + "\n"
+                + buildWrapper.getDockerRegistryCredentials() + "\n"
+                + scope + "\n"
+                + buildWrapper.getExecutors() + "\n"
+                + buildWrapper.getMaxBuilds() + "\n"
+                + buildWrapper.getIdleTimeout();
+    }
+
+    private static boolean isNullOrEmpty(String s) {
+        return s == null || s.isEmpty();
+    }
+
+    /**
+     * @return the registered docker-swarm-slave (dedicated or shared) with the given slave label, if any
+     */
+    public static
+    @Nullable
+    DockerSwarmSlave getBySlaveLabel(String slaveLabel) {
+        synchronized (DOCKER_SWARM_SLAVE_MAP) {
+            for (DockerSwarmSlave dockerSwarmSlave : DOCKER_SWARM_SLAVE_MAP.values()) {
+                if (dockerSwarmSlave.getSlaveLabel().equals(slaveLabel)) {
+                    return dockerSwarmSlave;
+                }
+            }
+            for (List<DockerSwarmSlave> sharedSlaves : SHARED_SLAVES.values()) {
+                for (DockerSwarmSlave dockerSwarmSlave : sharedSlaves) {
+                    if (dockerSwarmSlave.getSlaveLabel().equals(slaveLabel)) {
+                        return dockerSwarmSlave;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return all shared docker-swarm-slaves
+     */
+    public static List<DockerSwarmSlave> getShared() {
+        List<DockerSwarmSlave> shared = new ArrayList<DockerSwarmSlave>();
+        synchronized (DOCKER_SWARM_SLAVE_MAP) {
+            for (List<DockerSwarmSlave> sharedSlaves : SHARED_SLAVES.values()) {
+                shared.addAll(sharedSlaves);
+            }
         }
+        return shared;
+    }
 
-        DockerSwarmSlave dockerSwarmSlave = new DockerSwarmSlave(buildWrapper, project, buildNumber);
-        DOCKER_SWARM_SLAVE_MAP.put(project, dockerSwarmSlave);
+    /**
+     * Creates a docker-swarm-slave for a single block of the given run, e.g. one branch of a `parallel` step.
+     * <p/>
+     * Unlike {@link #create(DockerSwarmSlaveBuildWrapper, AbstractProject, int)} the slave is not registered per
+     * project, since a run can hold any number of these at the same time. The caller owns it and has to `close()` it.
+     */
+    public static DockerSwarmSlave create(DockerSwarmSlaveConfiguration configuration, Run<?, ?> run) throws IOException, InterruptedException {
+        String suffix = UUID.randomUUID().toString().substring(0, 8);
+        String slaveLabel = "dss-" + run.getParent().getFullName().hashCode() + "-" + run.getNumber() + "-" + suffix;
+        return new DockerSwarmSlave(configuration, run.getParent(), slaveLabel);
+    }
+
+    /**
+     * Gets hold of a docker-swarm-slave earlier created through {@link #create(DockerSwarmSlaveConfiguration, Run)},
+     * e.g. after Jenkins was restarted. The caller owns it and has to `close()` it.
+     */
+    public static DockerSwarmSlave create(DockerSwarmSlaveConfiguration configuration, Run<?, ?> run, String slaveLabel) throws IOException, InterruptedException {
+        DockerSwarmSlave dockerSwarmSlave = new DockerSwarmSlave(configuration, run.getParent(), slaveLabel);
+        // The container is still in use, it must not be swept as a left-over of the previous run of Jenkins
+        DockerSwarmSlaveCapacity.reattached(dockerSwarmSlave);
         return dockerSwarmSlave;
     }
 
     public static
     @Nullable
     DockerSwarmSlave get(AbstractProject<?, ?> project) {
-        return DOCKER_SWARM_SLAVE_MAP.get(project);
+        synchronized (DOCKER_SWARM_SLAVE_MAP) {
+            return DOCKER_SWARM_SLAVE_MAP.get(project);
+        }
+    }
+
+    /**
+     * @return all docker-swarm-slaves that were launched speculatively and haven't been claimed by a build yet
+     */
+    public static List<DockerSwarmSlave> getSpeculative() {
+        List<DockerSwarmSlave> speculative = new ArrayList<DockerSwarmSlave>();
+        synchronized (DOCKER_SWARM_SLAVE_MAP) {
+            for (DockerSwarmSlave dockerSwarmSlave : DOCKER_SWARM_SLAVE_MAP.values()) {
+                if (dockerSwarmSlave.isSpeculative()) {
+                    speculative.add(dockerSwarmSlave);
+                }
+            }
+        }
+        return speculative;
     }
 
     public void setupCredentials() throws IOException, InterruptedException {
-        this.dockerEnv = this.buildWrapper.getDockerHost().newKeyMaterialFactory(project, launcher.getChannel())
-                .plus(this.registryEndpoint.newKeyMaterialFactory(project, launcher.getChannel()))
+        this.dockerEnv = this.configuration.getDockerHost().newKeyMaterialFactory(job, launcher.getChannel())
+                .plus(this.registryEndpoint.newKeyMaterialFactory(job, launcher.getChannel()))
                 .materialize();
     }
 
     @Override
     public void close() throws IOException {
+        // The container is removed in the background and that still needs the docker environment, it is closed
+        // once the removal is done
+        synchronized (this) {
+            this.closing = true;
+        }
         this.cleanup();
-        this.dockerEnv.close();
+    }
+
+    /**
+     * Gives back the credentials of a slave that was created but never registered nor launched.
+     */
+    private void discard() {
+        try {
+            this.dockerEnv.close();
+        } catch (IOException e) {
+            e.printStackTrace(listener.error("Failed to close the docker environment"));
+        }
+    }
+
+    private void closeDockerEnvIfClosing() {
+        synchronized (this) {
+            if (!this.closing) {
+                return;
+            }
+        }
+
+        try {
+            this.dockerEnv.close();
+        } catch (IOException e) {
+            e.printStackTrace(listener.error("Failed to close the docker environment"));
+        }
     }
 
     protected void createSlave() throws IOException, InterruptedException, URISyntaxException {
+        // Respect the capacity of the docker host, the caller retries through `createSlave()` while we are waiting
+        if (!DockerSwarmSlaveCapacity.tryReserve(this)) {
+            synchronized (this) {
+                if (!this.waitingForCapacity) {
+                    logger.log(Level.INFO, "Docker host of '" + slaveLabel + "' is at capacity, holding back the launch");
+                }
+                this.waitingForCapacity = true;
+            }
+            return;
+        }
+        synchronized (this) {
+            this.waitingForCapacity = false;
+        }
+
         executorService.submit(new Runnable() {
             @Override
             public void run() {
@@ -134,22 +445,39 @@ public class DockerSwarmSlave implements Closeable {
                     String masterUri = getMasterUri();
 
                     // Run container
+                    // (the labels let every controller using this docker host account for the container)
                     args = dockerCommand()
                             .add("run", "-d")
                             .add("--name", slaveLabel)
-                            .add(buildWrapper.getDockerImage())
+                            .add("--label", DockerSwarmSlaveCapacity.LABEL_CONTROLLER + "=" + DockerSwarmSlaveCapacity.getControllerId())
+                            .add("--label", DockerSwarmSlaveCapacity.LABEL_RESERVATION + "=" + slaveLabel)
+                            .add("--label", DockerSwarmSlaveCapacity.LABEL_CREATED + "=" + System.currentTimeMillis());
+
+                    // Other controllers probe this URL to find out if we are still around. Only the configured URL is
+                    // reachable for them, the master URI might e.g. be an address on the local docker bridge.
+                    String controllerUrl = jenkins.getRootUrl();
+                    if (controllerUrl != null) {
+                        args.add("--label", DockerSwarmSlaveCapacity.LABEL_CONTROLLER_URL + "=" + controllerUrl);
+                    }
+
+                    args
+                            .add(configuration.getDockerImage())
                             .add("-master", masterUri)
                             .add("-labels").addQuoted(slaveLabel);
 
+                    if (executors > 1) {
+                        args.add("-executors", String.valueOf(executors));
+                    }
+
                     // Add specified swarm credentials if applicable
-                    String swarmCredentialsId = buildWrapper.getSwarmCredentials();
+                    String swarmCredentialsId = configuration.getSwarmCredentials();
                     if (swarmCredentialsId != null && !swarmCredentialsId.isEmpty()) {
                         // From what I've seen, we can't use `CredentialsProvider#findCredentialsById` directly, since
                         // we don't have a `Run`-context yet.
                         StandardUsernamePasswordCredentials credentials = CredentialsMatchers.firstOrNull(
                                 CredentialsProvider.lookupCredentials(
                                         StandardUsernamePasswordCredentials.class,
-                                        project,
+                                        job,
                                         null,
                                         Collections.<DomainRequirement>emptyList()
                                 ),
@@ -183,12 +511,16 @@ public class DockerSwarmSlave implements Closeable {
 
                     // Set the start time for a potential timeout
                     setTimeWaitForSlave(System.currentTimeMillis());
+
+                    containerCreated(System.currentTimeMillis(), getImageDigest());
                 } catch (Exception e) {
-                    DockerSwarmSlaveAbortHelper.abortBuild(project, e);
+                    launchFailed(e);
                 }
             }
         });
-        this.timeWaitForStart = System.currentTimeMillis();
+        synchronized (this) {
+            this.timeWaitForStart = System.currentTimeMillis();
+        }
     }
 
     protected void stopSlave() throws IOException, InterruptedException {
@@ -209,6 +541,7 @@ public class DockerSwarmSlave implements Closeable {
                             .envs(envVars)
                             .cmds(args)
                             .join();
+                    containerStopped(System.currentTimeMillis());
 
                     // Remove the container (it is guaranteed to be stopped by `docker stop`)
                     args = dockerCommand()
@@ -217,10 +550,13 @@ public class DockerSwarmSlave implements Closeable {
                     launcher.launch()
                             .envs(envVars)
                             .cmds(args)
-                            .start();
+                            .join();
+                    containerRemoved(System.currentTimeMillis());
                 } catch (Exception e) {
                     e.printStackTrace(listener.error("Failed to stop and remove the docker-container"));
                 }
+                DockerSwarmSlaveCapacity.released(DockerSwarmSlave.this);
+                closeDockerEnvIfClosing();
             }
         });
     }
@@ -237,21 +573,387 @@ public class DockerSwarmSlave implements Closeable {
             args = dockerCommand()
                     .add("rm", "-f")
                     .add(slaveLabel);
-            launcher.launch()
+            final Proc proc = launcher.launch()
                     .envs(envVars)
                     .cmds(args)
                     .start(); // We do not `join()` here, as we do not want to block Jenkins waiting for the removal
+            containerStopped(System.currentTimeMillis());
+            containerRemoved(System.currentTimeMillis());
+
+            executorService.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        proc.join();
+                    } catch (Exception ignored) {
+                    }
+                    closeDockerEnvIfClosing();
+                }
+            });
         } catch (Exception e) {
             // If destroying it causes an exception, we can generally ignore it, but we'll output it anyway
             e.printStackTrace(listener.error("Failed to desstroy the docker-container"));
+            closeDockerEnvIfClosing();
+        }
+        DockerSwarmSlaveCapacity.released(this);
+    }
+
+    /**
+     * @return the registry digest (`repository@sha256:...`) of the image the container was created from, or `null` if
+     * it can't be determined, e.g. because the image was built locally and never pushed or pulled
+     */
+    private String getImageDigest() {
+        try {
+            // The container only knows the local ID of its image
+            String imageId = inspect("{{.Image}}", slaveLabel);
+            if (imageId == null || imageId.isEmpty()) {
+                return null;
+            }
+
+            String repoDigests = inspect("{{range .RepoDigests}}{{.}} {{end}}", imageId);
+            if (repoDigests == null || repoDigests.isEmpty()) {
+                return null;
+            }
+            return repoDigests.split(" ")[0];
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private String inspect(String format, String object) throws IOException, InterruptedException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ArgumentListBuilder args = dockerCommand()
+                .add("inspect", "--format", format)
+                .add(object);
+
+        int status = launcher.launch()
+                .envs(getEnvVars())
+                .cmds(args)
+                .stdout(out)
+                .join();
+
+        return status == 0 ? out.toString("UTF-8").trim() : null;
+    }
+
+    /**
+     * Starts the provisioning timeline of a build that is about to wait for this slave, it is attached to the build
+     * once it starts.
+     */
+    public synchronized DockerSwarmSlaveProvisioningAction createTimeline(long timeQueued) {
+        DockerSwarmSlaveProvisioningAction timeline = new DockerSwarmSlaveProvisioningAction(slaveLabel, getDockerHostUri(), configuration.getDockerImage());
+        timeline.queued(timeQueued);
+        // A shared slave might have been created and connected long before this build came along
+        timeline.containerCreated(timeContainerCreated, imageDigest);
+        timeline.agentConnected(timeAgentConnected);
+        timelines.add(timeline);
+        return timeline;
+    }
+
+    /**
+     * Continues recording the steps of this slave into a timeline started before, e.g. before Jenkins was restarted.
+     */
+    public synchronized void addTimeline(DockerSwarmSlaveProvisioningAction timeline) {
+        if (!timelines.contains(timeline)) {
+            timelines.add(timeline);
+        }
+    }
+
+    /**
+     * Stops recording the steps of this slave into the given timeline.
+     */
+    public synchronized void removeTimeline(DockerSwarmSlaveProvisioningAction timeline) {
+        timelines.remove(timeline);
+    }
+
+    // The timelines save their build, that must not happen while holding our lock (the queue waits for it)
+    private synchronized List<DockerSwarmSlaveProvisioningAction> getTimelines() {
+        return new ArrayList<DockerSwarmSlaveProvisioningAction>(timelines);
+    }
+
+    private void containerCreated(long time, String imageDigest) {
+        synchronized (this) {
+            this.timeContainerCreated = time;
+            this.imageDigest = imageDigest;
+        }
+        for (DockerSwarmSlaveProvisioningAction timeline : getTimelines()) {
+            timeline.containerCreated(time, imageDigest);
+        }
+    }
+
+    /**
+     * Called once the slave has connected to Jenkins.
+     */
+    protected void agentConnected(long time) {
+        synchronized (this) {
+            if (this.timeAgentConnected != -1) {
+                return;
+            }
+            this.timeAgentConnected = time;
+        }
+        for (DockerSwarmSlaveProvisioningAction timeline : getTimelines()) {
+            timeline.agentConnected(time);
+        }
+    }
+
+    private void containerStopped(long time) {
+        for (DockerSwarmSlaveProvisioningAction timeline : getTimelines()) {
+            timeline.containerStopped(time);
+        }
+    }
+
+    private void containerRemoved(long time) {
+        for (DockerSwarmSlaveProvisioningAction timeline : getTimelines()) {
+            timeline.containerRemoved(time);
+        }
+    }
+
+    public DockerServerEndpoint getDockerHost() {
+        return configuration.getDockerHost();
+    }
+
+    public String getDockerExecutable() {
+        return dockerExecutable;
+    }
+
+    /**
+     * @return the docker host this slave is launched on, empty for the default one
+     */
+    public String getDockerHostUri() {
+        String uri = configuration.getDockerHost().getUri();
+        return uri == null ? "" : uri;
+    }
+
+    /**
+     * @return whether the launch is on hold because the docker host is at capacity
+     */
+    public synchronized boolean isWaitingForCapacity() {
+        return waitingForCapacity;
+    }
+
+    private synchronized void launchFailed(Exception e) {
+        this.launchFailure = e;
+        DockerSwarmSlaveCapacity.released(this);
+        // A failed speculation must not abort the build it was meant for, it launches a regular slave instead. The
+        // builds leasing a shared slave see the failure in their label assignment.
+        if (job instanceof AbstractProject && !speculative && !isShared()) {
+            DockerSwarmSlaveAbortHelper.abortBuild((AbstractProject<?, ?>) job, e);
+        }
+    }
+
+    public synchronized boolean isSpeculative() {
+        return speculative;
+    }
+
+    /**
+     * Claims a speculatively launched slave for the build that is now queued. Claiming a regular slave does nothing.
+     *
+     * @return `false` if the speculative launch failed or the slave was reaped, it has to be discarded then
+     */
+    public synchronized boolean claim() {
+        if (reaped) {
+            return false;
+        }
+        if (!speculative) {
+            return true;
+        }
+        if (launchFailure != null) {
+            return false;
+        }
+
+        speculative = false;
+        // The timeouts only start counting once a build actually waits for the slave
+        long now = System.currentTimeMillis();
+        if (this.timeWaitForSlave != -1) {
+            this.timeWaitForSlave = now;
+        } else if (this.timeWaitForStart != -1) {
+            this.timeWaitForStart = now;
+        }
+        return true;
+    }
+
+    /**
+     * Removes this slave if it is an unclaimed speculation that missed, i.e. nobody is going to claim it.
+     *
+     * @return whether the slave was reaped
+     */
+    protected boolean reap() {
+        if (!isSpeculative()) {
+            return false;
+        }
+        // As long as the project is queued (e.g. in its quiet period) the slave is still going to be claimed.
+        // (Not checked while holding our own lock, the queue calls `claim()` while holding its lock.)
+        if (job instanceof AbstractProject && jenkins.getQueue().contains((AbstractProject<?, ?>) job)) {
+            return false;
+        }
+        synchronized (this) {
+            if (!speculative) {
+                return false;
+            }
+            if (launchFailure == null) {
+                // The upstream build can still trigger the build we speculated on
+                if (upstream != null) {
+                    if (upstream.isBuilding()) {
+                        return false;
+                    }
+                    // Start counting once it is done
+                    upstream = null;
+                    timeSpeculated = System.currentTimeMillis();
+                }
+                if ((System.currentTimeMillis() - this.timeSpeculated) / 1000 <= speculationTimeout) {
+                    return false;
+                }
+            }
+            // Keep a build that gets queued right now from claiming the slave we are about to remove
+            reaped = true;
+        }
+
+        cleanup();
+        return true;
+    }
+
+    public Job<?, ?> getJob() {
+        return job;
+    }
+
+    public boolean isShared() {
+        return sharingKey != null;
+    }
+
+    // Callers hold the lock on `DOCKER_SWARM_SLAVE_MAP`
+    private boolean hasCapacity() {
+        return launchFailure == null && leases < executors && !isExhausted();
+    }
+
+    // Callers hold the lock on `DOCKER_SWARM_SLAVE_MAP`
+    private boolean isExhausted() {
+        return maxBuilds > 0 && totalLeases >= maxBuilds;
+    }
+
+    /**
+     * Removes this slave if it is shared and has been idle for longer than its idle-timeout.
+     *
+     * @return whether the slave was reaped
+     */
+    protected boolean reapIdle() {
+        synchronized (DOCKER_SWARM_SLAVE_MAP) {
+            if (!isShared() || leases > 0 || idleTimeout <= 0 || timeIdleSince == -1
+                    || (System.currentTimeMillis() - timeIdleSince) / 1000 <= idleTimeout) {
+                return false;
+            }
+            if (!removeShared()) {
+                return false;
+            }
+        }
+
+        closeQuietly();
+        return true;
+    }
+
+    /**
+     * Takes a shared slave whose agent didn't connect in time (or has dropped since) out of rotation and removes it, so
+     * that the next lease launches a fresh container. Builds still holding a lease on it see the failure and abort.
+     */
+    public void retire(Exception cause) {
+        synchronized (this) {
+            if (launchFailure == null) {
+                launchFailure = cause;
+            }
+        }
+
+        boolean removed;
+        synchronized (DOCKER_SWARM_SLAVE_MAP) {
+            removed = removeShared();
+        }
+        if (removed) {
+            closeQuietly();
+        }
+    }
+
+    // Callers hold the lock on `DOCKER_SWARM_SLAVE_MAP`
+    private boolean removeShared() {
+        List<DockerSwarmSlave> sharedSlaves = SHARED_SLAVES.get(sharingKey);
+        if (sharedSlaves == null || !sharedSlaves.remove(this)) {
+            // Already removed, e.g. by a concurrent release
+            return false;
         }
+        if (sharedSlaves.isEmpty()) {
+            SHARED_SLAVES.remove(sharingKey);
+        }
+        return true;
     }
 
-    private void setTimeWaitForSlave(long timeWaitForSlave) {
+    private void closeQuietly() {
+        try {
+            this.close();
+        } catch (IOException e) {
+            e.printStackTrace(listener.error("Failed to remove the docker-swarm-slave"));
+        }
+    }
+
+    /**
+     * Gives back a lease taken through {@link #acquire(DockerSwarmSlaveBuildWrapper, AbstractProject)}. The shared
+     * slave is only removed once all its leases are released and it has run as many builds as it may.
+     *
+     * @param timeline the provisioning timeline of the lease, if any; the release is its last step
+     */
+    public void releaseLease(@Nullable DockerSwarmSlaveProvisioningAction timeline) {
+        if (timeline != null) {
+            removeTimeline(timeline);
+            timeline.leaseReleased(System.currentTimeMillis());
+        }
+
+        boolean remove;
+        synchronized (DOCKER_SWARM_SLAVE_MAP) {
+            leases--;
+            if (leases == 0) {
+                timeIdleSince = System.currentTimeMillis();
+            }
+
+            // Only the release that takes the slave out of rotation removes it
+            remove = (launchFailure != null || (leases == 0 && isExhausted())) && removeShared();
+        }
+
+        if (remove) {
+            closeQuietly();
+        }
+    }
+
+    /**
+     * @return the exception that made launching the docker-container fail, or `null` if it hasn't failed (yet)
+     */
+    public
+    @Nullable
+    Exception getLaunchFailure() {
+        return launchFailure;
+    }
+
+    private synchronized void setTimeWaitForSlave(long timeWaitForSlave) {
         this.timeWaitForSlave = timeWaitForSlave;
     }
 
-    protected boolean shouldTimeout() {
+    /**
+     * @return whether at least one node carrying the slave label is connected
+     */
+    public boolean isOnline() {
+        Label label = jenkins.getLabel(slaveLabel);
+        if (label == null) {
+            return false;
+        }
+
+        for (Node node : label.getNodes()) {
+            Computer computer = node.toComputer();
+            if (computer != null && computer.isOnline()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    protected synchronized boolean shouldTimeout() {
+        // Once the slave has connected there is nothing left to wait for
+        if (isOnline()) {
+            return false;
+        }
         if (this.timeWaitForSlave != -1) {
             return (System.currentTimeMillis() - this.timeWaitForSlave) / 1000 > SLAVE_TIMEOUT;
         }
@@ -262,6 +964,24 @@ public class DockerSwarmSlave implements Closeable {
         return false;
     }
 
+    /**
+     * Blocks until the slave has connected, launching the docker-container has failed or we ran into the timeout.
+     */
+    public void waitUntilOnline() throws Exception {
+        while (!isOnline()) {
+            if (isWaitingForCapacity()) {
+                createSlave();
+            }
+            if (launchFailure != null) {
+                throw launchFailure;
+            }
+            if (shouldTimeout()) {
+                throw new RuntimeException("Docker container (or Docker itself) didn't respond in time, aborting.");
+            }
+            Thread.sleep(1000);
+        }
+    }
+
     private EnvVars getEnvVars() throws IOException, InterruptedException {
         if (envVars == null) {
             envVars = new EnvVars(jenkinsComputer.getEnvironment()).overrideAll(dockerEnv.env());
@@ -271,7 +991,7 @@ public class DockerSwarmSlave implements Closeable {
     }
 
     public String getSlaveLabel() {
-        return "dss-" + project.getName().hashCode() + "-" + buildNumber;
+        return slaveLabel;
     }
 
     private ArgumentListBuilder dockerCommand() {
@@ -286,9 +1006,9 @@ public class DockerSwarmSlave implements Closeable {
     private List<String> dockerCommandArgs() {
         List<String> args = new ArrayList<String>();
         args.add(this.dockerExecutable);
-        if (buildWrapper.getDockerHost().getUri() != null) {
+        if (configuration.getDockerHost().getUri() != null) {
             args.add("-H");
-            args.add(buildWrapper.getDockerHost().getUri());
+            args.add(configuration.getDockerHost().getUri());
         }
 
         return args;
@@ -296,13 +1016,13 @@ public class DockerSwarmSlave implements Closeable {
 
     protected String getMasterUri() throws URISyntaxException, IOException, InterruptedException {
         // Check if there is a specific URL to use
-        String jenkinsUri = buildWrapper.getJenkinsUri();
+        String jenkinsUri = configuration.getJenkinsUri();
         if (jenkinsUri != null && !jenkinsUri.isEmpty()) {
             return jenkinsUri;
         }
 
         // Check if we should use "auto-detection"
-        if (buildWrapper.shouldAutodetect()) {
+        if (configuration.shouldAutodetect()) {
             return getMasterUri(getMasterIp());
         }
 
@@ -347,14 +1067,14 @@ public class DockerSwarmSlave implements Closeable {
             // Get docker bridge gateway
             ByteArrayOutputStream out = new ByteArrayOutputStream();
             ArgumentListBuilder args = dockerCommand()
-                    .add("network", "inspect", buildWrapper.getDockerNetwork());
+                    .add("network", "inspect", configuration.getDockerNetwork());
 
             status = launcher.launch()
                     .cmds(args)
                     .stdout(out).join();
 
             if (status != 0) {
-                throw new RuntimeException("Docker network '" + buildWrapper.getDockerNetwork() + "' not found, aborting.");
+                throw new RuntimeException("Docker network '" + configuration.getDockerNetwork() + "' not found, aborting.");
             }
 
             String inspect = out.toString("UTF-8").trim();
@@ -362,7 +1082,7 @@ public class DockerSwarmSlave implements Closeable {
             // Find a substring like `"com.docker.network.bridge.name": "docker0"`
             Matcher m = Pattern.compile(".com\\.docker\\.network\\.bridge\\.name.:\\s*.(\\w+).").matcher(inspect);
             if (!m.find()) {
-                throw new RuntimeException("Couldn't determine network-interface name for '" + buildWrapper.getDockerNetwork() + "', aborting.");
+                throw new RuntimeException("Couldn't determine network-interface name for '" + configuration.getDockerNetwork() + "', aborting.");
             }
             String networkInterfaceName = m.group(1);
 
@@ -427,16 +1147,25 @@ public class DockerSwarmSlave implements Closeable {
     }
 
     protected void cleanup() {
+        // A shared slave merely got launched for this project, the state of the project is none of its business
+        AbstractProject<?, ?> project = job instanceof AbstractProject && !isShared() ? (AbstractProject<?, ?>) job : null;
         try {
-            if (DockerSwarmSlaveAbortHelper.shouldAbortBuild(project)) {
+            if (launchFailure != null || (project != null && DockerSwarmSlaveAbortHelper.shouldAbortBuild(project))) {
                 this.destroySlave();
             } else {
                 this.stopSlave();
             }
         } catch (Exception ignored) {
         }
-        //noinspection ThrowableResultOfMethodCallIgnored
-        DockerSwarmSlaveAbortHelper.remove(project);
-        DOCKER_SWARM_SLAVE_MAP.remove(project);
+        if (project != null) {
+            //noinspection ThrowableResultOfMethodCallIgnored
+            DockerSwarmSlaveAbortHelper.remove(project);
+            synchronized (DOCKER_SWARM_SLAVE_MAP) {
+                // Don't remove a slave that has since replaced this one
+                if (DOCKER_SWARM_SLAVE_MAP.get(project) == this) {
+                    DOCKER_SWARM_SLAVE_MAP.remove(project);
+                }
+            }
+        }
     }
 }
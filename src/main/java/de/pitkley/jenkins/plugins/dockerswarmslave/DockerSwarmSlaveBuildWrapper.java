@@ -19,12 +19,16 @@ import org.jenkinsci.plugins.docker.commons.credentials.DockerRegistryToken;
 import org.jenkinsci.plugins.docker.commons.credentials.DockerServerEndpoint;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
 import java.io.IOException;
 import java.util.Collections;
 
-public class DockerSwarmSlaveBuildWrapper extends BuildWrapper {
+public class DockerSwarmSlaveBuildWrapper extends BuildWrapper implements DockerSwarmSlaveConfiguration {
+
+    public static final String SPECULATE_ON_UPSTREAM_STARTED = "started";
+    public static final int DEFAULT_SPECULATION_TIMEOUT = 60;
 
     private final String dockerImage;
     private final String swarmCredentials;
@@ -34,6 +38,12 @@ public class DockerSwarmSlaveBuildWrapper extends BuildWrapper {
     private final String dockerInstallation;
     private final String dockerNetwork;
     private final String dockerRegistryCredentials;
+    private String speculateOnUpstream;
+    private boolean speculateOnQuietPeriod;
+    private int speculationTimeout = DEFAULT_SPECULATION_TIMEOUT;
+    private int executors = 1;
+    private int maxBuilds = 50;
+    private int idleTimeout = 300;
 
     @DataBoundConstructor
     public DockerSwarmSlaveBuildWrapper(String dockerImage, String swarmCredentials, boolean autodetect, String jenkinsUri, DockerServerEndpoint dockerHost, String dockerInstallation, String dockerNetwork, String dockerRegistryCredentials) {
@@ -51,6 +61,11 @@ public class DockerSwarmSlaveBuildWrapper extends BuildWrapper {
     public Environment setUp(AbstractBuild build, Launcher launcher, BuildListener listener) throws IOException, InterruptedException {
         AbstractProject<?, ?> project = build.getProject();
 
+        DockerSwarmSlaveProvisioningAction timeline = build.getAction(DockerSwarmSlaveProvisioningAction.class);
+        if (timeline != null) {
+            timeline.buildStarted(System.currentTimeMillis());
+        }
+
         if (DockerSwarmSlaveAbortHelper.shouldAbortBuild(project)) {
             //noinspection ThrowableResultOfMethodCallIgnored
             DockerSwarmSlaveAbortHelper.getAbortBuildCause(project).printStackTrace(listener.getLogger());
@@ -65,38 +80,121 @@ public class DockerSwarmSlaveBuildWrapper extends BuildWrapper {
         };
     }
 
+    @Override
     public String getDockerImage() {
         return dockerImage;
     }
 
+    @Override
     public String getSwarmCredentials() {
         return swarmCredentials;
     }
 
+    @Override
     public String getJenkinsUri() {
         return jenkinsUri;
     }
 
+    @Override
     public boolean shouldAutodetect() {
         return autodetect;
     }
 
+    @Override
     public DockerServerEndpoint getDockerHost() {
         return dockerHost;
     }
 
+    @Override
     public String getDockerInstallation() {
         return dockerInstallation;
     }
 
+    @Override
     public String getDockerNetwork() {
         return dockerNetwork;
     }
 
+    @Override
     public String getDockerRegistryCredentials() {
         return dockerRegistryCredentials;
     }
 
+    /**
+     * @return the point of an upstream build at which the slave for this project should already be launched,
+     * {@link #SPECULATE_ON_UPSTREAM_STARTED} or `null`/empty for never
+     */
+    public String getSpeculateOnUpstream() {
+        return speculateOnUpstream;
+    }
+
+    @DataBoundSetter
+    public void setSpeculateOnUpstream(String speculateOnUpstream) {
+        this.speculateOnUpstream = speculateOnUpstream;
+    }
+
+    public boolean isSpeculateOnQuietPeriod() {
+        return speculateOnQuietPeriod;
+    }
+
+    @DataBoundSetter
+    public void setSpeculateOnQuietPeriod(boolean speculateOnQuietPeriod) {
+        this.speculateOnQuietPeriod = speculateOnQuietPeriod;
+    }
+
+    /**
+     * @return the number of seconds a speculatively launched slave is kept for its build to be queued (counted from
+     * the end of the triggering upstream build, if any)
+     */
+    public int getSpeculationTimeout() {
+        return speculationTimeout > 0 ? speculationTimeout : DEFAULT_SPECULATION_TIMEOUT;
+    }
+
+    @DataBoundSetter
+    public void setSpeculationTimeout(int speculationTimeout) {
+        this.speculationTimeout = speculationTimeout;
+    }
+
+    /**
+     * @return the number of executors of the slave, with more than one the slave is shared by compatible builds
+     */
+    public int getExecutors() {
+        return executors;
+    }
+
+    @DataBoundSetter
+    public void setExecutors(int executors) {
+        this.executors = executors;
+    }
+
+    public boolean isShared() {
+        return executors > 1;
+    }
+
+    /**
+     * @return the number of builds after which a shared slave is recycled, `0` for no limit
+     */
+    public int getMaxBuilds() {
+        return maxBuilds;
+    }
+
+    @DataBoundSetter
+    public void setMaxBuilds(int maxBuilds) {
+        this.maxBuilds = maxBuilds;
+    }
+
+    /**
+     * @return the number of seconds after which an idle shared slave is removed, `0` to keep it
+     */
+    public int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    @DataBoundSetter
+    public void setIdleTimeout(int idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
     @Extension
     public static class DescriptorImpl extends BuildWrapperDescriptor {
 
@@ -112,6 +210,23 @@ public class DockerSwarmSlaveBuildWrapper extends BuildWrapper {
 
         @SuppressWarnings("unused")
         public ListBoxModel doFillSwarmCredentialsItems(@AncestorInPath Item item, @QueryParameter String uri) {
+            return swarmCredentialsItems(item);
+        }
+
+        @SuppressWarnings("unused")
+        public ListBoxModel doFillDockerRegistryCredentialsItems(@AncestorInPath Item item, @QueryParameter String uri) {
+            return dockerRegistryCredentialsItems(item);
+        }
+
+        @SuppressWarnings("unused")
+        public ListBoxModel doFillSpeculateOnUpstreamItems() {
+            ListBoxModel items = new ListBoxModel();
+            items.add("Never", "");
+            items.add("When an upstream build starts", SPECULATE_ON_UPSTREAM_STARTED);
+            return items;
+        }
+
+        static ListBoxModel swarmCredentialsItems(Item item) {
             return new StandardListBoxModel()
                     .withEmptySelection()
                     .withAll(CredentialsProvider.lookupCredentials(
@@ -122,8 +237,7 @@ public class DockerSwarmSlaveBuildWrapper extends BuildWrapper {
                     ));
         }
 
-        @SuppressWarnings("unused")
-        public ListBoxModel doFillDockerRegistryCredentialsItems(@AncestorInPath Item item, @QueryParameter String uri) {
+        static ListBoxModel dockerRegistryCredentialsItems(Item item) {
             return new StandardListBoxModel()
                     .withEmptySelection()
                     .withMatching(AuthenticationTokens.matcher(DockerRegistryToken.class),
@@ -0,0 +1,468 @@
+package de.pitkley.jenkins.plugins.dockerswarmslave;
+
+import hudson.EnvVars;
+import hudson.Launcher;
+import hudson.model.Item;
+import hudson.model.TaskListener;
+import hudson.util.ArgumentListBuilder;
+import hudson.util.ExceptionCatchingThreadFactory;
+import hudson.util.LogTaskListener;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.docker.commons.credentials.DockerServerEndpoint;
+import org.jenkinsci.plugins.docker.commons.credentials.KeyMaterial;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Accounts for the docker-swarm-slave containers of all Jenkins controllers that share a docker host.
+ * <p/>
+ * Every container is labelled with its owning controller when it is launched. The containers of a docker host are
+ * listed in the background every {@link #REFRESH_INTERVAL} seconds; in between, the cached list is only updated with
+ * the containers this controller reserves and removes itself. That way checking the capacity never blocks the queue.
+ */
+public class DockerSwarmSlaveCapacity {
+
+    public static final String LABEL_CONTROLLER = "de.pitkley.dockerswarmslave.controller";
+    public static final String LABEL_CONTROLLER_URL = "de.pitkley.dockerswarmslave.controller-url";
+    public static final String LABEL_RESERVATION = "de.pitkley.dockerswarmslave.reservation";
+    public static final String LABEL_CREATED = "de.pitkley.dockerswarmslave.created";
+
+    private static final int REFRESH_INTERVAL = 15;
+    private static final int RESERVATION_TIMEOUT = 120;
+    private static final int ORPHAN_TIMEOUT = 600;
+    private static final int PROBE_TIMEOUT = 5;
+    // Time given to pipelines after a restart to reattach to the containers they were running on
+    private static final int RESUME_TIMEOUT = 300;
+    // Containers of this controller created before it started belong to a previous run of it
+    private static final long TIME_STARTED = System.currentTimeMillis();
+
+    private static final String FORMAT = "{{.ID}}\t{{.Status}}"
+            + "\t{{.Label \"" + LABEL_CONTROLLER + "\"}}"
+            + "\t{{.Label \"" + LABEL_CONTROLLER_URL + "\"}}"
+            + "\t{{.Label \"" + LABEL_RESERVATION + "\"}}"
+            + "\t{{.Label \"" + LABEL_CREATED + "\"}}";
+
+    private static final Logger LOGGER = Logger.getLogger(DockerSwarmSlaveCapacity.class.getName());
+    private transient static final ExecutorService executorService = Executors.newCachedThreadPool(new ExceptionCatchingThreadFactory(new NamingThreadFactory(Executors.defaultThreadFactory(), "DockerSwarmSlaveCapacity.executor")));
+    private static final Map<String, Host> HOSTS = new HashMap<String, Host>();
+    // Controller URL to the time it was first found unreachable
+    private static final Map<String, Long> UNREACHABLE_CONTROLLERS = new HashMap<String, Long>();
+    // Slave labels of containers launched before the restart that are still in use
+    private static final Set<String> REATTACHED = new HashSet<String>();
+
+    public static String getControllerId() {
+        return Jenkins.getInstance().getLegacyInstanceId();
+    }
+
+    /**
+     * Reserves room for the container of the given slave on its docker host.
+     *
+     * @return `false` if the docker host is at capacity (or its containers haven't been listed yet). If listing them
+     * failed, the capacity can't be accounted for and the launch is allowed.
+     */
+    public static boolean tryReserve(DockerSwarmSlave dockerSwarmSlave) {
+        DockerSwarmSlaveGlobalConfiguration globalConfiguration = DockerSwarmSlaveGlobalConfiguration.get();
+        int hostCapacity = globalConfiguration.getHostCapacity();
+        if (hostCapacity <= 0 && !globalConfiguration.isSweepOrphans()) {
+            return true;
+        }
+
+        Host host = getHost(dockerSwarmSlave.getDockerHostUri());
+        synchronized (host) {
+            host.use(dockerSwarmSlave);
+            host.refreshIfStale();
+
+            if (hostCapacity <= 0) {
+                return true;
+            }
+            if (host.containers == null) {
+                if (host.listingFailed) {
+                    // Holding the launch back would leave the build in the queue for as long as the listing fails
+                    LOGGER.log(Level.WARNING, "The docker-containers of '" + dockerSwarmSlave.getDockerHostUri() + "' couldn't be listed, launching '" + dockerSwarmSlave.getSlaveLabel() + "' without checking the capacity");
+                    return true;
+                }
+                return false;
+            }
+
+            host.expireReservations();
+            if (host.countActive() >= hostCapacity) {
+                return false;
+            }
+            host.reservations.put(dockerSwarmSlave.getSlaveLabel(), System.currentTimeMillis());
+            return true;
+        }
+    }
+
+    /**
+     * Keeps the container of the given slave, launched before Jenkins was restarted, from being swept as an orphan.
+     */
+    public static void reattached(DockerSwarmSlave dockerSwarmSlave) {
+        synchronized (REATTACHED) {
+            REATTACHED.add(dockerSwarmSlave.getSlaveLabel());
+        }
+    }
+
+    /**
+     * Gives back the room reserved for the container of the given slave, once it is removed (or failed to launch).
+     */
+    public static void released(DockerSwarmSlave dockerSwarmSlave) {
+        synchronized (REATTACHED) {
+            REATTACHED.remove(dockerSwarmSlave.getSlaveLabel());
+        }
+
+        Host host;
+        synchronized (HOSTS) {
+            host = HOSTS.get(dockerSwarmSlave.getDockerHostUri());
+        }
+        if (host == null) {
+            return;
+        }
+
+        synchronized (host) {
+            host.reservations.remove(dockerSwarmSlave.getSlaveLabel());
+            if (host.containers != null) {
+                Iterator<Container> it = host.containers.iterator();
+                while (it.hasNext()) {
+                    if (dockerSwarmSlave.getSlaveLabel().equals(it.next().reservation)) {
+                        it.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Refreshes (and with it sweeps) all docker hosts this controller has used, if their list is stale.
+     */
+    public static void refreshAll() {
+        List<Host> hosts;
+        synchronized (HOSTS) {
+            hosts = new ArrayList<Host>(HOSTS.values());
+        }
+        for (Host host : hosts) {
+            synchronized (host) {
+                host.refreshIfStale();
+            }
+        }
+    }
+
+    private static Host getHost(String dockerHostUri) {
+        synchronized (HOSTS) {
+            Host host = HOSTS.get(dockerHostUri);
+            if (host == null) {
+                host = new Host();
+                HOSTS.put(dockerHostUri, host);
+            }
+            return host;
+        }
+    }
+
+    private static class Host {
+        // How to reach the docker host, taken from the slave that used it last. The credentials are materialized for
+        // every refresh on its own, the ones of that slave are closed along with it.
+        private DockerServerEndpoint endpoint;
+        private Item context;
+        private String dockerExecutable;
+        private List<Container> containers;
+        private long timeRefreshed = -1L;
+        private boolean refreshing = false;
+        // Whether the last attempt to list the containers failed
+        private boolean listingFailed = false;
+        // Slave label to the time the reservation was made, until its container shows up in the list
+        private final Map<String, Long> reservations = new HashMap<String, Long>();
+
+        // Callers hold the lock on this host
+        private void use(DockerSwarmSlave dockerSwarmSlave) {
+            this.endpoint = dockerSwarmSlave.getDockerHost();
+            this.context = dockerSwarmSlave.getJob();
+            this.dockerExecutable = dockerSwarmSlave.getDockerExecutable();
+        }
+
+        // Callers hold the lock on this host
+        private void refreshIfStale() {
+            if (refreshing || endpoint == null) {
+                return;
+            }
+            if (timeRefreshed != -1 && (System.currentTimeMillis() - timeRefreshed) / 1000 < REFRESH_INTERVAL) {
+                return;
+            }
+
+            refreshing = true;
+            final DockerServerEndpoint endpoint = this.endpoint;
+            final Item context = this.context;
+            final String dockerExecutable = this.dockerExecutable;
+            executorService.submit(new Runnable() {
+                @Override
+                public void run() {
+                    List<Container> containers = null;
+                    Docker docker = null;
+                    try {
+                        docker = new Docker(endpoint, context, dockerExecutable);
+                        containers = new ArrayList<Container>();
+                        for (String line : docker.listContainers()) {
+                            containers.add(new Container(line));
+                        }
+
+                        if (DockerSwarmSlaveGlobalConfiguration.get().isSweepOrphans()) {
+                            sweep(docker, containers);
+                        }
+                    } catch (Exception e) {
+                        LOGGER.log(Level.WARNING, "Refreshing the docker-containers of '" + endpoint.getUri() + "' failed", e);
+                        containers = null;
+                    } finally {
+                        if (docker != null) {
+                            docker.close();
+                        }
+                        synchronized (Host.this) {
+                            refreshing = false;
+                            listingFailed = containers == null;
+                            if (containers != null) {
+                                Host.this.containers = containers;
+                                timeRefreshed = System.currentTimeMillis();
+                                // Reservations whose container is listed now are accounted for by the list
+                                for (Container container : containers) {
+                                    reservations.remove(container.reservation);
+                                }
+                            }
+                        }
+                    }
+                }
+            });
+        }
+
+        // Callers hold the lock on this host
+        private void expireReservations() {
+            Iterator<Long> it = reservations.values().iterator();
+            while (it.hasNext()) {
+                if ((System.currentTimeMillis() - it.next()) / 1000 > RESERVATION_TIMEOUT) {
+                    it.remove();
+                }
+            }
+        }
+
+        // Callers hold the lock on this host
+        private int countActive() {
+            int active = reservations.size();
+            for (Container container : containers) {
+                if (container.isActive()) {
+                    active++;
+                }
+            }
+            return active;
+        }
+    }
+
+    /**
+     * Removes the containers whose owning controller has gone away: containers this controller launched before it
+     * was restarted, and containers of other controllers that have been unreachable for {@link #ORPHAN_TIMEOUT}
+     * seconds. Containers of other controllers that didn't label them with their URL are left alone.
+     * <p/>
+     * Pipelines that were running inside a `dockerSwarmSlave` block resume on their container after a restart (see
+     * {@link #reattached(DockerSwarmSlave)}), those containers are kept. Since pipelines resume in the background,
+     * containers of this controller are only swept {@link #RESUME_TIMEOUT} seconds after it started.
+     */
+    private static void sweep(Docker docker, List<Container> containers) throws IOException, InterruptedException {
+        String controllerId = getControllerId();
+        Map<String, Boolean> gone = new HashMap<String, Boolean>();
+
+        Iterator<Container> it = containers.iterator();
+        while (it.hasNext()) {
+            Container container = it.next();
+
+            boolean orphan;
+            if (controllerId.equals(container.controller)) {
+                orphan = container.created != -1 && container.created < TIME_STARTED
+                        && (System.currentTimeMillis() - TIME_STARTED) / 1000 > RESUME_TIMEOUT
+                        && !isReattached(container.reservation);
+            } else {
+                if (container.controllerUrl.isEmpty()) {
+                    continue;
+                }
+                if (!gone.containsKey(container.controllerUrl)) {
+                    gone.put(container.controllerUrl, isControllerGone(container.controllerUrl));
+                }
+                orphan = gone.get(container.controllerUrl);
+            }
+
+            if (orphan) {
+                LOGGER.log(Level.INFO, "Removing orphaned docker-container '" + container.reservation + "' of controller '" + container.controllerUrl + "'");
+                docker.removeContainer(container.id);
+                it.remove();
+            }
+        }
+    }
+
+    private static boolean isReattached(String reservation) {
+        synchronized (REATTACHED) {
+            return REATTACHED.contains(reservation);
+        }
+    }
+
+    private static boolean isControllerGone(String controllerUrl) {
+        boolean unreachable;
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(controllerUrl).openConnection();
+            connection.setConnectTimeout(PROBE_TIMEOUT * 1000);
+            try {
+                // Only the connection itself matters, e.g. an SSL or HTTP error still means the controller is there
+                connection.connect();
+            } finally {
+                connection.disconnect();
+            }
+            unreachable = false;
+        } catch (ConnectException e) {
+            unreachable = true;
+        } catch (NoRouteToHostException e) {
+            unreachable = true;
+        } catch (SocketTimeoutException e) {
+            unreachable = true;
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Probing controller '" + controllerUrl + "' failed, assuming it is still there", e);
+            unreachable = false;
+        }
+
+        synchronized (UNREACHABLE_CONTROLLERS) {
+            if (!unreachable) {
+                UNREACHABLE_CONTROLLERS.remove(controllerUrl);
+                return false;
+            }
+
+            Long since = UNREACHABLE_CONTROLLERS.get(controllerUrl);
+            if (since == null) {
+                UNREACHABLE_CONTROLLERS.put(controllerUrl, System.currentTimeMillis());
+                return false;
+            }
+            return (System.currentTimeMillis() - since) / 1000 > ORPHAN_TIMEOUT;
+        }
+    }
+
+    /**
+     * Runs docker commands against a docker host with credentials of its own, until it is closed.
+     */
+    private static class Docker {
+
+        private final TaskListener listener = new LogTaskListener(LOGGER, Level.ALL);
+        private final Launcher launcher = Jenkins.getInstance().createLauncher(listener);
+        private final DockerServerEndpoint endpoint;
+        private final String dockerExecutable;
+        private final KeyMaterial keyMaterial;
+        private final EnvVars envVars;
+
+        private Docker(DockerServerEndpoint endpoint, Item context, String dockerExecutable) throws IOException, InterruptedException {
+            this.endpoint = endpoint;
+            this.dockerExecutable = dockerExecutable;
+            this.keyMaterial = endpoint.newKeyMaterialFactory(context, launcher.getChannel()).materialize();
+            this.envVars = new EnvVars(Jenkins.getInstance().createComputer().getEnvironment()).overrideAll(keyMaterial.env());
+        }
+
+        private ArgumentListBuilder dockerCommand() {
+            ArgumentListBuilder args = new ArgumentListBuilder();
+            args.add(dockerExecutable);
+            if (endpoint.getUri() != null) {
+                args.add("-H", endpoint.getUri());
+            }
+            return args;
+        }
+
+        /**
+         * Lists the containers on the docker host that carry the labels of any docker-swarm-slave controller.
+         *
+         * @return one line per container, formatted by {@link #FORMAT}
+         */
+        private List<String> listContainers() throws IOException, InterruptedException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ArgumentListBuilder args = dockerCommand()
+                    .add("ps", "-a", "--no-trunc")
+                    .add("--filter", "label=" + LABEL_CONTROLLER)
+                    .add("--format", FORMAT);
+
+            int status = launcher.launch()
+                    .envs(envVars)
+                    .cmds(args)
+                    .stdout(out)
+                    .join();
+
+            if (status != 0) {
+                throw new RuntimeException("Listing the docker-containers failed.");
+            }
+
+            List<String> lines = new ArrayList<String>();
+            for (String line : out.toString("UTF-8").split("\n")) {
+                if (!line.trim().isEmpty()) {
+                    lines.add(line);
+                }
+            }
+            return lines;
+        }
+
+        /**
+         * Force-removes an arbitrary container on the docker host.
+         */
+        private void removeContainer(String containerId) throws IOException, InterruptedException {
+            ArgumentListBuilder args = dockerCommand()
+                    .add("rm", "-f")
+                    .add(containerId);
+            launcher.launch()
+                    .envs(envVars)
+                    .cmds(args)
+                    .join();
+        }
+
+        private void close() {
+            try {
+                keyMaterial.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to close the docker environment of '" + endpoint.getUri() + "'", e);
+            }
+        }
+    }
+
+    private static class Container {
+        private final String id;
+        private final String status;
+        private final String controller;
+        private final String controllerUrl;
+        private final String reservation;
+        private final long created;
+
+        private Container(String line) {
+            String[] split = line.split("\\t", -1);
+            if (split.length < 6) {
+                throw new IllegalArgumentException("Unexpected docker-container listing: " + line);
+            }
+
+            this.id = split[0].trim();
+            this.status = split[1].trim();
+            this.controller = split[2].trim();
+            this.controllerUrl = split[3].trim();
+            this.reservation = split[4].trim();
+
+            long created;
+            try {
+                created = Long.parseLong(split[5].trim());
+            } catch (NumberFormatException e) {
+                created = -1L;
+            }
+            this.created = created;
+        }
+
+        /**
+         * @return whether the container takes up capacity, i.e. is created or running but hasn't exited
+         */
+        private boolean isActive() {
+            return !status.startsWith("Exited") && !status.startsWith("Dead");
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package de.pitkley.jenkins.plugins.dockerswarmslave;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.model.labels.LabelAtom;
+import hudson.slaves.ComputerListener;
+
+/**
+ * Records when a docker-swarm-slave has connected, for the provisioning timeline of its builds.
+ */
+@Extension
+public class DockerSwarmSlaveComputerListener extends ComputerListener {
+
+    @Override
+    public void onOnline(Computer c, TaskListener listener) {
+        Node node = c.getNode();
+        if (node == null) {
+            return;
+        }
+
+        for (LabelAtom label : node.getAssignedLabels()) {
+            DockerSwarmSlave dockerSwarmSlave = DockerSwarmSlave.getBySlaveLabel(label.getName());
+            if (dockerSwarmSlave != null) {
+                dockerSwarmSlave.agentConnected(System.currentTimeMillis());
+                return;
+            }
+        }
+    }
+}
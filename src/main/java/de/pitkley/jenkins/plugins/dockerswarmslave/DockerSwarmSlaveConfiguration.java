@@ -0,0 +1,26 @@
+package de.pitkley.jenkins.plugins.dockerswarmslave;
+
+import org.jenkinsci.plugins.docker.commons.credentials.DockerServerEndpoint;
+
+/**
+ * The settings needed to launch a docker-swarm-slave, shared by {@link DockerSwarmSlaveBuildWrapper} and
+ * {@link DockerSwarmSlaveStep}.
+ */
+public interface DockerSwarmSlaveConfiguration {
+
+    String getDockerImage();
+
+    String getSwarmCredentials();
+
+    String getJenkinsUri();
+
+    boolean shouldAutodetect();
+
+    DockerServerEndpoint getDockerHost();
+
+    String getDockerInstallation();
+
+    String getDockerNetwork();
+
+    String getDockerRegistryCredentials();
+}
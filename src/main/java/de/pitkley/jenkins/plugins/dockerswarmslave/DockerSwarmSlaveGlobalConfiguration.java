@@ -0,0 +1,51 @@
+package de.pitkley.jenkins.plugins.dockerswarmslave;
+
+import hudson.Extension;
+import jenkins.model.GlobalConfiguration;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.StaplerRequest;
+
+@Extension
+public class DockerSwarmSlaveGlobalConfiguration extends GlobalConfiguration {
+
+    private int hostCapacity;
+    private boolean sweepOrphans;
+
+    public DockerSwarmSlaveGlobalConfiguration() {
+        load();
+    }
+
+    public static DockerSwarmSlaveGlobalConfiguration get() {
+        return GlobalConfiguration.all().get(DockerSwarmSlaveGlobalConfiguration.class);
+    }
+
+    @Override
+    public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+        req.bindJSON(this, json);
+        save();
+        return true;
+    }
+
+    /**
+     * @return the number of docker-swarm-slave containers, of all controllers combined, a single docker host may run.
+     * `0` for no limit.
+     */
+    public int getHostCapacity() {
+        return hostCapacity;
+    }
+
+    public void setHostCapacity(int hostCapacity) {
+        this.hostCapacity = hostCapacity;
+    }
+
+    /**
+     * @return whether containers left behind by a controller that has gone away should be removed
+     */
+    public boolean isSweepOrphans() {
+        return sweepOrphans;
+    }
+
+    public void setSweepOrphans(boolean sweepOrphans) {
+        this.sweepOrphans = sweepOrphans;
+    }
+}
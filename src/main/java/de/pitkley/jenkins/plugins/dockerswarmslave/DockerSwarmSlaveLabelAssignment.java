@@ -6,6 +6,8 @@ import hudson.model.Label;
 import hudson.model.labels.LabelAssignmentAction;
 import hudson.model.queue.SubTask;
 
+import java.io.IOException;
+import java.net.URISyntaxException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -13,6 +15,14 @@ public class DockerSwarmSlaveLabelAssignment implements LabelAssignmentAction {
 
     private transient final Logger logger = Logger.getLogger(getClass().getName());
 
+    private transient final long timeQueued = System.currentTimeMillis();
+
+    // The lease this queue item (and later its build) holds on a shared docker-swarm-slave, guarded by `this`
+    private transient DockerSwarmSlave sharedSlave;
+    // The provisioning timeline of this queue item and the slave it is recorded from, guarded by `this`
+    private transient DockerSwarmSlaveProvisioningAction timeline;
+    private transient DockerSwarmSlave timelineSlave;
+
     @Override
     public Label getAssignedLabel(SubTask subTask) {
         // Check class constraints
@@ -36,17 +46,46 @@ public class DockerSwarmSlaveLabelAssignment implements LabelAssignmentAction {
         }
 
         try {
-            DockerSwarmSlave dockerSwarmSlave = DockerSwarmSlave.get(project);
-            if (dockerSwarmSlave == null) {
-                // Create the docker-swarm-slave
-                dockerSwarmSlave = DockerSwarmSlave.create(buildWrapper, project, project.getNextBuildNumber());
+            DockerSwarmSlave dockerSwarmSlave;
+            if (buildWrapper.isShared()) {
+                // Lease an executor on a shared docker-swarm-slave (launching one if necessary)
+                dockerSwarmSlave = lease(buildWrapper, project);
+            } else {
+                dockerSwarmSlave = DockerSwarmSlave.get(project);
+                if (dockerSwarmSlave != null && !dockerSwarmSlave.claim()) {
+                    // The slave was launched speculatively and failed (or was reaped), discard it and start over
+                    dockerSwarmSlave.cleanup();
+                    dockerSwarmSlave = null;
+                }
+                if (dockerSwarmSlave == null) {
+                    // Create the docker-swarm-slave
+                    dockerSwarmSlave = DockerSwarmSlave.create(buildWrapper, project, project.getNextBuildNumber());
+                    dockerSwarmSlave.createSlave();
+                }
+            }
+
+            // Retry launching if the docker host was at capacity so far
+            if (dockerSwarmSlave.isWaitingForCapacity()) {
                 dockerSwarmSlave.createSlave();
             }
 
+            // Start the provisioning timeline of the build
+            startTimeline(dockerSwarmSlave);
+
+            // A shared slave might have been launched for (and failed in) the build of another project
+            if (dockerSwarmSlave.getLaunchFailure() != null) {
+                throw new RuntimeException("Launching the docker-swarm-slave failed, aborting.", dockerSwarmSlave.getLaunchFailure());
+            }
+
             // Since `getAssignedLabel(SubTask)` is called repeatedly if there is no build-processor with the given
             // label available, we have to timeout at some point if the started docker-container doesn't come up.
             if (dockerSwarmSlave.shouldTimeout()) {
-                throw new RuntimeException("Docker container (or Docker itself) didn't respond in time, aborting.");
+                RuntimeException e = new RuntimeException("Docker container (or Docker itself) didn't respond in time, aborting.");
+                // Later builds must not be handed the same dead slave
+                if (dockerSwarmSlave.isShared()) {
+                    dockerSwarmSlave.retire(e);
+                }
+                throw e;
             }
 
             String slaveLabel = dockerSwarmSlave.getSlaveLabel();
@@ -62,6 +101,62 @@ public class DockerSwarmSlaveLabelAssignment implements LabelAssignmentAction {
         return subTask.getAssignedLabel();
     }
 
+    /**
+     * Leases an executor on a shared docker-swarm-slave for this queue item, unless it already holds one.
+     */
+    private synchronized DockerSwarmSlave lease(DockerSwarmSlaveBuildWrapper buildWrapper, AbstractProject<?, ?> project) throws IOException, InterruptedException, URISyntaxException {
+        if (sharedSlave == null) {
+            sharedSlave = DockerSwarmSlave.acquire(buildWrapper, project);
+        }
+        return sharedSlave;
+    }
+
+    /**
+     * Records the provisioning of this queue item from the given slave, unless it already does.
+     */
+    private synchronized void startTimeline(DockerSwarmSlave dockerSwarmSlave) {
+        if (timelineSlave == dockerSwarmSlave) {
+            return;
+        }
+        // The slave we waited for so far was discarded
+        if (timelineSlave != null) {
+            timelineSlave.removeTimeline(timeline);
+        }
+        timeline = dockerSwarmSlave.createTimeline(timeQueued);
+        timelineSlave = dockerSwarmSlave;
+    }
+
+    /**
+     * @return the provisioning timeline of this queue item (or build), if it has waited for a docker-swarm-slave
+     */
+    public synchronized DockerSwarmSlaveProvisioningAction getTimeline() {
+        return timeline;
+    }
+
+    /**
+     * @return the shared docker-swarm-slave this queue item (or build) holds a lease on, if any
+     */
+    public synchronized DockerSwarmSlave getSharedSlave() {
+        return sharedSlave;
+    }
+
+    /**
+     * Gives back the lease on a shared docker-swarm-slave, if this queue item (or build) holds one.
+     */
+    public void release() {
+        DockerSwarmSlave dockerSwarmSlave;
+        DockerSwarmSlaveProvisioningAction timeline;
+        synchronized (this) {
+            dockerSwarmSlave = sharedSlave;
+            timeline = timelineSlave == sharedSlave ? this.timeline : null;
+            sharedSlave = null;
+        }
+
+        if (dockerSwarmSlave != null) {
+            dockerSwarmSlave.releaseLease(timeline);
+        }
+    }
+
     /**
      * This method checks current jobs configuration to see if the DockerSwarmSlaveBuildWrapper
      * is enabled. It does this by checking if DockerSwarmSlaveBuildWrapper exists in the jobs
@@ -83,6 +178,18 @@ public class DockerSwarmSlaveLabelAssignment implements LabelAssignmentAction {
         return project.getBuildWrappersList().get(DockerSwarmSlaveBuildWrapper.class);
     }
 
+    /**
+     * Same as {@link #getDockerSwarmSlaveBuildWrapper(BuildableItemWithBuildWrappers)}, for projects that might not
+     * support build wrappers at all.
+     */
+    protected static DockerSwarmSlaveBuildWrapper getDockerSwarmSlaveBuildWrapper(AbstractProject<?, ?> project) {
+        if (!(project instanceof BuildableItemWithBuildWrappers)) {
+            return null;
+        }
+
+        return getDockerSwarmSlaveBuildWrapper((BuildableItemWithBuildWrappers) project);
+    }
+
     @Override
     public String getIconFileName() {
         return null;
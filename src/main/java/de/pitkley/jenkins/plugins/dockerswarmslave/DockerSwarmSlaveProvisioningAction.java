@@ -0,0 +1,328 @@
+package de.pitkley.jenkins.plugins.dockerswarmslave;
+
+import hudson.model.Run;
+import jenkins.model.RunAction2;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records when each step of provisioning the docker-swarm-slave of a build happened, shown as a timeline on the build
+ * page and available through the remote API. Pipeline runs get one for every `dockerSwarmSlave` block, in which the
+ * start of the block takes the place of the start of the build.
+ */
+@ExportedBean
+public class DockerSwarmSlaveProvisioningAction implements RunAction2 {
+
+    // Number of previous builds the median duration of every phase is taken from
+    private static final int HISTORY = 20;
+    // Number of previous builds looked at to find those, builds might not have used a docker-swarm-slave
+    private static final int HISTORY_SCAN = 50;
+    // Phases are only flagged as slow if they exceed the median by more than this many milliseconds
+    private static final long SLOW_TOLERANCE = 1000L;
+
+    private static final Logger LOGGER = Logger.getLogger(DockerSwarmSlaveProvisioningAction.class.getName());
+    private transient Run<?, ?> run;
+
+    private final String slaveLabel;
+    private final String dockerHost;
+    private final String image;
+    private String imageDigest;
+
+    private long timeQueued = -1L;
+    private long timeContainerCreated = -1L;
+    private long timeAgentConnected = -1L;
+    private long timeExecutorAssigned = -1L;
+    private long timeBuildStarted = -1L;
+    private long timeContainerStopped = -1L;
+    private long timeContainerRemoved = -1L;
+    // Only recorded for shared slaves, whose container outlives the build
+    private long timeLeaseReleased = -1L;
+
+    public DockerSwarmSlaveProvisioningAction(String slaveLabel, String dockerHost, String image) {
+        this.slaveLabel = slaveLabel;
+        this.dockerHost = dockerHost;
+        this.image = image;
+    }
+
+    @Override
+    public void onAttached(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    @Override
+    public void onLoad(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    protected synchronized void queued(long time) {
+        if (this.timeQueued == -1) {
+            this.timeQueued = time;
+        }
+    }
+
+    protected synchronized void containerCreated(long time, String imageDigest) {
+        this.timeContainerCreated = time;
+        this.imageDigest = imageDigest;
+    }
+
+    protected synchronized void agentConnected(long time) {
+        this.timeAgentConnected = time;
+    }
+
+    protected synchronized void executorAssigned(long time) {
+        this.timeExecutorAssigned = time;
+    }
+
+    protected synchronized void buildStarted(long time) {
+        this.timeBuildStarted = time;
+    }
+
+    protected void containerStopped(long time) {
+        synchronized (this) {
+            this.timeContainerStopped = time;
+        }
+        save();
+    }
+
+    protected void containerRemoved(long time) {
+        synchronized (this) {
+            this.timeContainerRemoved = time;
+        }
+        save();
+    }
+
+    protected void leaseReleased(long time) {
+        synchronized (this) {
+            this.timeLeaseReleased = time;
+        }
+        save();
+    }
+
+    // The container is stopped and removed after the build has been saved for the last time
+    private void save() {
+        if (run == null || run.isBuilding()) {
+            return;
+        }
+        try {
+            run.save();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save the provisioning timeline of " + run, e);
+        }
+    }
+
+    @Exported
+    public String getSlaveLabel() {
+        return slaveLabel;
+    }
+
+    @Exported
+    public String getDockerHost() {
+        return dockerHost.isEmpty() ? "(default)" : dockerHost;
+    }
+
+    @Exported
+    public String getImage() {
+        return image;
+    }
+
+    /**
+     * @return the registry digest of the image the container was created from, `null` if the image has none
+     */
+    @Exported
+    public synchronized String getImageDigest() {
+        return imageDigest;
+    }
+
+    @Exported
+    public synchronized long getTimeQueued() {
+        return timeQueued;
+    }
+
+    @Exported
+    public synchronized long getTimeContainerCreated() {
+        return timeContainerCreated;
+    }
+
+    @Exported
+    public synchronized long getTimeAgentConnected() {
+        return timeAgentConnected;
+    }
+
+    @Exported
+    public synchronized long getTimeExecutorAssigned() {
+        return timeExecutorAssigned;
+    }
+
+    @Exported
+    public synchronized long getTimeBuildStarted() {
+        return timeBuildStarted;
+    }
+
+    @Exported
+    public synchronized long getTimeContainerStopped() {
+        return timeContainerStopped;
+    }
+
+    @Exported
+    public synchronized long getTimeContainerRemoved() {
+        return timeContainerRemoved;
+    }
+
+    /**
+     * @return when the build gave back its executor on a shared docker-swarm-slave, `-1` for a dedicated one
+     */
+    @Exported
+    public synchronized long getTimeLeaseReleased() {
+        return timeLeaseReleased;
+    }
+
+    /**
+     * @return the phases of provisioning in order, each compared to the median of the previous builds of the job. A
+     * run with several timelines (one per `dockerSwarmSlave` block) is compared to the timeline at the same position.
+     */
+    @Exported
+    public List<Phase> getPhases() {
+        List<Phase> phases = getOwnPhases();
+
+        // Collect the durations of the same phases of the previous builds
+        List<List<Long>> history = new ArrayList<List<Long>>();
+        for (int i = 0; i < phases.size(); i++) {
+            history.add(new ArrayList<Long>());
+        }
+        int position = run == null ? 0 : Math.max(0, run.getActions(DockerSwarmSlaveProvisioningAction.class).indexOf(this));
+        int builds = 0;
+        int scanned = 0;
+        for (Run<?, ?> r = run == null ? null : run.getPreviousBuild(); r != null && builds < HISTORY && scanned < HISTORY_SCAN; r = r.getPreviousBuild()) {
+            scanned++;
+            List<DockerSwarmSlaveProvisioningAction> actions = r.getActions(DockerSwarmSlaveProvisioningAction.class);
+            if (actions.size() <= position) {
+                continue;
+            }
+            DockerSwarmSlaveProvisioningAction action = actions.get(position);
+            builds++;
+
+            List<Phase> previousPhases = action.getOwnPhases();
+            for (int i = 0; i < phases.size(); i++) {
+                long duration = previousPhases.get(i).getDuration();
+                if (duration != -1) {
+                    history.get(i).add(duration);
+                }
+            }
+        }
+
+        for (int i = 0; i < phases.size(); i++) {
+            phases.get(i).medianDuration = median(history.get(i));
+        }
+        return phases;
+    }
+
+    private synchronized List<Phase> getOwnPhases() {
+        long timeBuildFinished = -1L;
+        if (run != null && !run.isBuilding()) {
+            timeBuildFinished = run.getStartTimeInMillis() + run.getDuration();
+        }
+
+        List<Phase> phases = new ArrayList<Phase>();
+        phases.add(new Phase("Waiting for the container", timeQueued, timeContainerCreated));
+        phases.add(new Phase("Waiting for the agent to connect", Math.max(timeQueued, timeContainerCreated), timeAgentConnected));
+        phases.add(new Phase("Waiting for an executor", Math.max(timeQueued, timeAgentConnected), timeExecutorAssigned));
+        phases.add(new Phase("Preparing the build", timeExecutorAssigned, timeBuildStarted));
+        phases.add(new Phase("Stopping the container", timeBuildFinished, timeContainerStopped));
+        phases.add(new Phase("Removing the container", timeContainerStopped, timeContainerRemoved));
+        phases.add(new Phase("Releasing the shared executor", timeBuildFinished, timeLeaseReleased));
+        return phases;
+    }
+
+    private static long median(List<Long> durations) {
+        if (durations.isEmpty()) {
+            return -1L;
+        }
+        Collections.sort(durations);
+        int middle = durations.size() / 2;
+        if (durations.size() % 2 == 1) {
+            return durations.get(middle);
+        }
+        return (durations.get(middle - 1) + durations.get(middle)) / 2;
+    }
+
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Docker Swarm Slave provisioning";
+    }
+
+    @Override
+    public String getUrlName() {
+        return null;
+    }
+
+    @ExportedBean(defaultVisibility = 2)
+    public static class Phase {
+
+        private final String name;
+        private final long start;
+        private final long end;
+        private long medianDuration = -1L;
+
+        private Phase(String name, long start, long end) {
+            this.name = name;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Exported
+        public String getName() {
+            return name;
+        }
+
+        @Exported
+        public long getStart() {
+            return start;
+        }
+
+        @Exported
+        public long getEnd() {
+            return end;
+        }
+
+        /**
+         * @return the duration of the phase in milliseconds, `-1` if the phase hasn't completed (or was skipped)
+         */
+        @Exported
+        public long getDuration() {
+            if (start == -1 || end == -1) {
+                return -1L;
+            }
+            // A shared slave can be up before the build was even queued, nothing was waited for then
+            return Math.max(0L, end - start);
+        }
+
+        /**
+         * @return the median duration of this phase over the previous builds, `-1` if there are none
+         */
+        @Exported
+        public long getMedianDuration() {
+            return medianDuration;
+        }
+
+        /**
+         * @return whether this phase took longer than it usually does for the job
+         */
+        @Exported
+        public boolean isSlow() {
+            long duration = getDuration();
+            return duration != -1 && medianDuration != -1 && duration - medianDuration > SLOW_TOLERANCE;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package de.pitkley.jenkins.plugins.dockerswarmslave;
+
+import hudson.Extension;
+import hudson.model.AbstractProject;
+import hudson.model.Queue;
+import hudson.model.queue.QueueListener;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Launches the docker-swarm-slave while an item is still in its quiet period, if the project asks for it.
+ */
+@Extension
+public class DockerSwarmSlaveQueueListener extends QueueListener {
+
+    private transient final Logger logger = Logger.getLogger(getClass().getName());
+
+    @Override
+    public void onEnterWaiting(Queue.WaitingItem wi) {
+        if (!(wi.task instanceof AbstractProject)) {
+            return;
+        }
+        AbstractProject<?, ?> project = (AbstractProject<?, ?>) wi.task;
+
+        DockerSwarmSlaveBuildWrapper buildWrapper = DockerSwarmSlaveLabelAssignment.getDockerSwarmSlaveBuildWrapper(project);
+        if (buildWrapper == null || !buildWrapper.isSpeculateOnQuietPeriod()) {
+            return;
+        }
+
+        // Without a quiet period there is nothing to gain
+        if (wi.timestamp.getTimeInMillis() <= System.currentTimeMillis()) {
+            return;
+        }
+
+        try {
+            DockerSwarmSlave.speculate(buildWrapper, project, null);
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Speculatively launching a docker-swarm-slave failed", e);
+        }
+    }
+
+    @Override
+    public void onLeft(Queue.LeftItem li) {
+        if (!li.isCancelled() || !(li.task instanceof AbstractProject)) {
+            return;
+        }
+
+        AbstractProject<?, ?> project = (AbstractProject<?, ?>) li.task;
+
+        // The build we leased a shared slave for isn't going to happen
+        DockerSwarmSlaveLabelAssignment labelAssignment = li.getAction(DockerSwarmSlaveLabelAssignment.class);
+        if (labelAssignment != null) {
+            labelAssignment.release();
+        }
+
+        // Neither is the one we launched the slave for. As long as the project is building, the slave is still in use
+        // though.
+        DockerSwarmSlave dockerSwarmSlave = DockerSwarmSlave.get(project);
+        if (dockerSwarmSlave != null && (dockerSwarmSlave.isSpeculative() || !project.isBuilding())) {
+            dockerSwarmSlave.cleanup();
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package de.pitkley.jenkins.plugins.dockerswarmslave;
+
+import hudson.Extension;
+import hudson.model.PeriodicWork;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Removes speculatively launched docker-swarm-slaves that were never claimed by a build, as well as shared
+ * docker-swarm-slaves that have been idle for too long. Also keeps the capacity accounting of the docker hosts fresh.
+ */
+@Extension
+public class DockerSwarmSlaveReaper extends PeriodicWork {
+
+    private transient final Logger logger = Logger.getLogger(getClass().getName());
+
+    @Override
+    public long getRecurrencePeriod() {
+        return 10 * 1000L;
+    }
+
+    @Override
+    protected void doRun() throws Exception {
+        for (DockerSwarmSlave dockerSwarmSlave : DockerSwarmSlave.getSpeculative()) {
+            if (dockerSwarmSlave.reap()) {
+                logger.log(Level.INFO, "Reaped speculative docker-swarm-slave '" + dockerSwarmSlave.getSlaveLabel() + "'");
+            }
+        }
+        for (DockerSwarmSlave dockerSwarmSlave : DockerSwarmSlave.getShared()) {
+            if (dockerSwarmSlave.reapIdle()) {
+                logger.log(Level.INFO, "Reaped idle shared docker-swarm-slave '" + dockerSwarmSlave.getSlaveLabel() + "'");
+            }
+        }
+        DockerSwarmSlaveCapacity.refreshAll();
+    }
+}
@@ -5,10 +5,66 @@ import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.BuildableItemWithBuildWrappers;
 import hudson.model.Run;
+import hudson.model.TaskListener;
 import hudson.model.listeners.RunListener;
 
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
 @Extension
 public class DockerSwarmSlaveRunListener extends RunListener<Run<?, ?>> {
+
+    private transient final Logger logger = Logger.getLogger(getClass().getName());
+
+    @Override
+    public void onStarted(Run<?, ?> run, TaskListener listener) {
+        attachTimeline(run);
+        speculateDownstream(run, DockerSwarmSlaveBuildWrapper.SPECULATE_ON_UPSTREAM_STARTED);
+    }
+
+    /**
+     * Attaches the provisioning timeline to the build that is running on our docker-swarm-slave.
+     */
+    private void attachTimeline(Run<?, ?> run) {
+        if (!AbstractBuild.class.isAssignableFrom(run.getClass())) {
+            return;
+        }
+
+        // The timeline was started by the queue item the build came from
+        DockerSwarmSlaveLabelAssignment labelAssignment = run.getAction(DockerSwarmSlaveLabelAssignment.class);
+        DockerSwarmSlaveProvisioningAction timeline = labelAssignment != null ? labelAssignment.getTimeline() : null;
+        if (timeline == null) {
+            return;
+        }
+
+        timeline.executorAssigned(run.getTimeInMillis());
+        run.addAction(timeline);
+    }
+
+    /**
+     * Launches the docker-swarm-slaves of all downstream projects that want to be provisioned at the given point of
+     * the upstream build.
+     */
+    private void speculateDownstream(Run<?, ?> run, String point) {
+        if (!AbstractBuild.class.isAssignableFrom(run.getClass())) {
+            return;
+        }
+        AbstractProject<?, ?> upstream = ((AbstractBuild<?, ?>) run).getProject();
+
+        for (AbstractProject<?, ?> downstream : upstream.getDownstreamProjects()) {
+            DockerSwarmSlaveBuildWrapper buildWrapper = DockerSwarmSlaveLabelAssignment.getDockerSwarmSlaveBuildWrapper(downstream);
+            if (buildWrapper == null || !point.equals(buildWrapper.getSpeculateOnUpstream()) || !downstream.isBuildable()) {
+                continue;
+            }
+
+            try {
+                DockerSwarmSlave.speculate(buildWrapper, downstream, run);
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Speculatively launching a docker-swarm-slave for '" + downstream.getFullName() + "' failed", e);
+            }
+        }
+    }
+
     @Override
     public void onFinalized(Run<?, ?> run) {
         // Check that we have a build
@@ -33,6 +89,15 @@ public class DockerSwarmSlaveRunListener extends RunListener<Run<?, ?>> {
             return;
         }
 
+        // Give back the executor of a shared slave
+        DockerSwarmSlaveLabelAssignment labelAssignment = run.getAction(DockerSwarmSlaveLabelAssignment.class);
+        if (labelAssignment != null && labelAssignment.getSharedSlave() != null) {
+            labelAssignment.release();
+            //noinspection ThrowableResultOfMethodCallIgnored
+            DockerSwarmSlaveAbortHelper.remove(project);
+            return;
+        }
+
         // Do we have a matching DockerSwarmSlave?
         DockerSwarmSlave dockerSwarmSlave = DockerSwarmSlave.get(project);
         if (dockerSwarmSlave == null) {
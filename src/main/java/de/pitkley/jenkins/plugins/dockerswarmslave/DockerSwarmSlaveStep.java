@@ -0,0 +1,154 @@
+package de.pitkley.jenkins.plugins.dockerswarmslave;
+
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.util.ListBoxModel;
+import org.jenkinsci.plugins.docker.commons.credentials.DockerServerEndpoint;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
+import org.kohsuke.stapler.AncestorInPath;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+/**
+ * Pipeline counterpart of {@link DockerSwarmSlaveBuildWrapper}: launches a dedicated docker-swarm-slave for the
+ * enclosed block and removes it as soon as the block ends.
+ * <p/>
+ * The label of the slave is exposed to the block as `DOCKER_SWARM_SLAVE_LABEL`, e.g.:
+ * <pre>
+ * dockerSwarmSlave(dockerImage: 'my/swarm-slave') {
+ *     node(env.DOCKER_SWARM_SLAVE_LABEL) {
+ *         sh 'make test'
+ *     }
+ * }
+ * </pre>
+ */
+public class DockerSwarmSlaveStep extends AbstractStepImpl implements DockerSwarmSlaveConfiguration {
+
+    private final String dockerImage;
+    private String swarmCredentials;
+    private String jenkinsUri;
+    private boolean autodetect;
+    private DockerServerEndpoint dockerHost = new DockerServerEndpoint(null, null);
+    private String dockerInstallation;
+    private String dockerNetwork = "bridge";
+    private String dockerRegistryCredentials;
+
+    @DataBoundConstructor
+    public DockerSwarmSlaveStep(String dockerImage) {
+        this.dockerImage = dockerImage;
+    }
+
+    @Override
+    public String getDockerImage() {
+        return dockerImage;
+    }
+
+    @Override
+    public String getSwarmCredentials() {
+        return swarmCredentials;
+    }
+
+    @DataBoundSetter
+    public void setSwarmCredentials(String swarmCredentials) {
+        this.swarmCredentials = swarmCredentials;
+    }
+
+    @Override
+    public String getJenkinsUri() {
+        return jenkinsUri;
+    }
+
+    @DataBoundSetter
+    public void setJenkinsUri(String jenkinsUri) {
+        this.jenkinsUri = jenkinsUri;
+    }
+
+    @Override
+    public boolean shouldAutodetect() {
+        return autodetect;
+    }
+
+    public boolean isAutodetect() {
+        return autodetect;
+    }
+
+    @DataBoundSetter
+    public void setAutodetect(boolean autodetect) {
+        this.autodetect = autodetect;
+    }
+
+    @Override
+    public DockerServerEndpoint getDockerHost() {
+        return dockerHost;
+    }
+
+    @DataBoundSetter
+    public void setDockerHost(DockerServerEndpoint dockerHost) {
+        this.dockerHost = dockerHost;
+    }
+
+    @Override
+    public String getDockerInstallation() {
+        return dockerInstallation;
+    }
+
+    @DataBoundSetter
+    public void setDockerInstallation(String dockerInstallation) {
+        this.dockerInstallation = dockerInstallation;
+    }
+
+    @Override
+    public String getDockerNetwork() {
+        return dockerNetwork;
+    }
+
+    @DataBoundSetter
+    public void setDockerNetwork(String dockerNetwork) {
+        this.dockerNetwork = dockerNetwork;
+    }
+
+    @Override
+    public String getDockerRegistryCredentials() {
+        return dockerRegistryCredentials;
+    }
+
+    @DataBoundSetter
+    public void setDockerRegistryCredentials(String dockerRegistryCredentials) {
+        this.dockerRegistryCredentials = dockerRegistryCredentials;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends AbstractStepDescriptorImpl {
+
+        public DescriptorImpl() {
+            super(DockerSwarmSlaveStepExecution.class);
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "dockerSwarmSlave";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Run block with a docker-swarm-slave";
+        }
+
+        @Override
+        public boolean takesImplicitBlockArgument() {
+            return true;
+        }
+
+        @SuppressWarnings("unused")
+        public ListBoxModel doFillSwarmCredentialsItems(@AncestorInPath Item item, @QueryParameter String uri) {
+            return DockerSwarmSlaveBuildWrapper.DescriptorImpl.swarmCredentialsItems(item);
+        }
+
+        @SuppressWarnings("unused")
+        public ListBoxModel doFillDockerRegistryCredentialsItems(@AncestorInPath Item item, @QueryParameter String uri) {
+            return DockerSwarmSlaveBuildWrapper.DescriptorImpl.dockerRegistryCredentialsItems(item);
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package de.pitkley.jenkins.plugins.dockerswarmslave;
+
+import com.google.inject.Inject;
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.model.Computer;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import org.jenkinsci.plugins.docker.commons.credentials.DockerServerEndpoint;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepExecutionImpl;
+import org.jenkinsci.plugins.workflow.steps.BodyExecutionCallback;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class DockerSwarmSlaveStepExecution extends AbstractStepExecutionImpl {
+
+    private static final long serialVersionUID = 1L;
+    private static final Logger LOGGER = Logger.getLogger(DockerSwarmSlaveStepExecution.class.getName());
+
+    public static final String LABEL_VARIABLE = "DOCKER_SWARM_SLAVE_LABEL";
+
+    @Inject(optional = true)
+    private transient DockerSwarmSlaveStep step;
+    @StepContextParameter
+    private transient Run<?, ?> run;
+    @StepContextParameter
+    private transient EnvVars envVars;
+    @StepContextParameter
+    private transient TaskListener listener;
+
+    // Kept so the container can still be removed after Jenkins was restarted
+    private Configuration configuration;
+    private String slaveLabel;
+    private boolean bodyStarted = false;
+    private boolean completed = false;
+
+    private transient DockerSwarmSlave dockerSwarmSlave;
+    private transient Future<?> waitForSlave;
+
+    @Override
+    public boolean start() throws Exception {
+        configuration = new Configuration(step);
+        dockerSwarmSlave = DockerSwarmSlave.create(configuration, run);
+        slaveLabel = dockerSwarmSlave.getSlaveLabel();
+
+        // Every block gets a timeline of its own, a run can hold any number of them
+        final DockerSwarmSlaveProvisioningAction timeline = dockerSwarmSlave.createTimeline(System.currentTimeMillis());
+        run.addAction(timeline);
+        listener.getLogger().println("Launching docker-swarm-slave '" + slaveLabel + "' from image '" + step.getDockerImage() + "'");
+
+        // `createSlave()` only submits the launch, so branches of a `parallel` step start their containers concurrently
+        dockerSwarmSlave.createSlave();
+
+        // Wait for the slave in the background, the CPS thread must not be blocked
+        final DockerSwarmSlave dockerSwarmSlave = this.dockerSwarmSlave;
+        waitForSlave = Computer.threadPoolForRemoting.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    dockerSwarmSlave.waitUntilOnline();
+                } catch (Exception e) {
+                    fail(e);
+                    return;
+                }
+
+                synchronized (DockerSwarmSlaveStepExecution.this) {
+                    // The step might have been stopped in the meantime
+                    if (completed) {
+                        return;
+                    }
+                    bodyStarted = true;
+                }
+                timeline.buildStarted(System.currentTimeMillis());
+
+                EnvVars overrides = new EnvVars(envVars);
+                overrides.put(LABEL_VARIABLE, slaveLabel);
+                getContext().newBodyInvoker()
+                        .withContext(overrides)
+                        .withCallback(new Callback())
+                        .start();
+            }
+        });
+        return false;
+    }
+
+    @Override
+    public void stop(Throwable cause) throws Exception {
+        // Complete with the given cause first, the interrupted waiter would otherwise fail the step with its own
+        // `InterruptedException`
+        fail(cause);
+        if (waitForSlave != null) {
+            waitForSlave.cancel(true);
+        }
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+
+        try {
+            Run<?, ?> run = getContext().get(Run.class);
+            DockerSwarmSlave dockerSwarmSlave = DockerSwarmSlave.create(configuration, run, slaveLabel);
+            // Record the removal of the container in the timeline of this block
+            for (DockerSwarmSlaveProvisioningAction timeline : run.getActions(DockerSwarmSlaveProvisioningAction.class)) {
+                if (slaveLabel.equals(timeline.getSlaveLabel())) {
+                    dockerSwarmSlave.addTimeline(timeline);
+                }
+            }
+            synchronized (this) {
+                this.dockerSwarmSlave = dockerSwarmSlave;
+                // A running block continues, the callback removes the container once it is done
+                if (bodyStarted || completed) {
+                    return;
+                }
+            }
+
+            // Waiting for the slave doesn't survive a restart, nothing is going to start the block anymore
+            fail(new AbortException("Jenkins was restarted while waiting for docker-swarm-slave '" + slaveLabel + "'"));
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Marks the step as completed.
+     *
+     * @return `false` if it was completed before, it must not be completed again then
+     */
+    private synchronized boolean complete() {
+        if (completed) {
+            return false;
+        }
+        completed = true;
+        return true;
+    }
+
+    private void fail(Throwable cause) {
+        if (complete()) {
+            release();
+            getContext().onFailure(cause);
+        }
+    }
+
+    private void release() {
+        DockerSwarmSlave dockerSwarmSlave;
+        synchronized (this) {
+            dockerSwarmSlave = this.dockerSwarmSlave;
+            this.dockerSwarmSlave = null;
+        }
+
+        if (dockerSwarmSlave != null) {
+            try {
+                dockerSwarmSlave.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to release docker-swarm-slave '" + slaveLabel + "'", e);
+            }
+        }
+    }
+
+    /**
+     * Releases the container as soon as the block is done, instead of waiting for the whole run to finish.
+     */
+    private class Callback extends BodyExecutionCallback {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void onSuccess(StepContext context, Object result) {
+            if (complete()) {
+                release();
+                context.onSuccess(result);
+            }
+        }
+
+        @Override
+        public void onFailure(StepContext context, Throwable t) {
+            if (complete()) {
+                release();
+                context.onFailure(t);
+            }
+        }
+    }
+
+    /**
+     * Serializable copy of the settings of {@link DockerSwarmSlaveStep}.
+     */
+    private static class Configuration implements DockerSwarmSlaveConfiguration, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String dockerImage;
+        private final String swarmCredentials;
+        private final String jenkinsUri;
+        private final boolean autodetect;
+        private final String dockerHostUri;
+        private final String dockerHostCredentialsId;
+        private final String dockerInstallation;
+        private final String dockerNetwork;
+        private final String dockerRegistryCredentials;
+
+        private Configuration(DockerSwarmSlaveConfiguration configuration) {
+            this.dockerImage = configuration.getDockerImage();
+            this.swarmCredentials = configuration.getSwarmCredentials();
+            this.jenkinsUri = configuration.getJenkinsUri();
+            this.autodetect = configuration.shouldAutodetect();
+            this.dockerHostUri = configuration.getDockerHost().getUri();
+            this.dockerHostCredentialsId = configuration.getDockerHost().getCredentialsId();
+            this.dockerInstallation = configuration.getDockerInstallation();
+            this.dockerNetwork = configuration.getDockerNetwork();
+            this.dockerRegistryCredentials = configuration.getDockerRegistryCredentials();
+        }
+
+        @Override
+        public String getDockerImage() {
+            return dockerImage;
+        }
+
+        @Override
+        public String getSwarmCredentials() {
+            return swarmCredentials;
+        }
+
+        @Override
+        public String getJenkinsUri() {
+            return jenkinsUri;
+        }
+
+        @Override
+        public boolean shouldAutodetect() {
+            return autodetect;
+        }
+
+        @Override
+        public DockerServerEndpoint getDockerHost() {
+            return new DockerServerEndpoint(dockerHostUri, dockerHostCredentialsId);
+        }
+
+        @Override
+        public String getDockerInstallation() {
+            return dockerInstallation;
+        }
+
+        @Override
+        public String getDockerNetwork() {
+            return dockerNetwork;
+        }
+
+        @Override
+        public String getDockerRegistryCredentials() {
+            return dockerRegistryCredentials;
+        }
+    }
+}